@@ -15,4 +15,13 @@ public class CouchbaseConfiguration {
 	private String bucketPassword;
 	private String keyPrefix;
 	private String keySeparator;
+
+	// local counter accumulation, disabled when the flush interval is 0
+	private int counterFlushIntervalMillis;
+	// pending delta of a single key that triggers an early flush, 0 to disable
+	private int counterFlushThreshold;
+
+	// hot key tracking, disabled when top K is 0
+	private int hotKeyTopK;
+	private int hotKeyWindowMillis;
 }
@@ -31,6 +31,13 @@ public class LoggerConstants {
     public static final String COUCH_EXCEPTION_FOR_PUT_OPERATION = "exception for put operation for document: {}";
     public static final String COUCH_EXCEPTION_FOR_REMOVE_KEY = "exception for remove operation for key: {}";
     public static final String COUCH_EXCEPTION_FOR_BULK_GET = "exception for bulk get operation";
+    public static final String COUCH_EXCEPTION_FOR_COUNTER_KEY = "exception for counter operation for key: {}";
+    public static final String COUCH_COUNTER_INVALID_INPUT_FOR_KEY = "invalid input params given for couch counter for key: {}";
+    public static final String COUCH_COUNTER_FLUSH_FAILED_FOR_KEY = "counter flush failed for key: {}, re-queueing delta: {}";
+    public static final String COUCH_COUNTER_DELTA_DROPPED_FOR_KEY = "counter flush failed for key: {}, dropping delta: {}";
+    public static final String COUCH_COUNTER_FLUSHER_TERMINATION_TIMEOUT = "counter flusher did not terminate in time";
+    public static final String COUCH_COUNTER_ACCUMULATION_ENABLED = "counter accumulation enabled with flush interval: {} ms and threshold: {}";
+    public static final String COUCH_HOT_KEY_TRACKING_ENABLED = "hot key tracking enabled for top {} keys over {} ms windows";
     
     // couchbase dao
     public static final String COUCH_EXCEPTION = "couchbase exception raised";
@@ -0,0 +1,119 @@
+package com.flyppo.cb.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock free count-min sketch over string keys
+ * 	- estimates never under count, over counting is bounded by the width
+ * 	- rows are indexed by two independent seeded hashes of the key
+ * 	  characters combined per row (h1 + row * h2), not by String.hashCode
+ * 
+ * @author mmt6461
+ *
+ */
+class CountMinSketch {
+
+	private static final int DEPTH = 4;
+	private static final int SEED_1 = 0x9E3779B9;
+	private static final int SEED_2 = 0x85EBCA6B;
+
+	private final AtomicLongArray table;
+	private final int width;
+	private final int mask;
+
+	/**
+	 * @param width
+	 * 		counters per row, rounded up to a power of two
+	 */
+	CountMinSketch(int width) {
+
+		int size = 1;
+		while (size < width)
+			size <<= 1;
+
+		this.width = size;
+		this.mask = size - 1;
+		this.table = new AtomicLongArray(DEPTH * size);
+	}
+
+	/**
+	 * increments the key and returns its new estimate
+	 * 
+	 * @param key
+	 * @return
+	 */
+	long increment(String key) {
+
+		long hash = hash(key);
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+			min = Math.min(min, table.incrementAndGet(index(row, hash)));
+		return min;
+	}
+
+	/**
+	 * returns the estimated count for the key
+	 * 
+	 * @param key
+	 * @return
+	 */
+	long estimate(String key) {
+
+		long hash = hash(key);
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+			min = Math.min(min, table.get(index(row, hash)));
+		return min;
+	}
+
+	/**
+	 * resets all counters
+	 */
+	void clear() {
+
+		for (int i = 0; i < table.length(); i++)
+			table.set(i, 0);
+	}
+
+	private int index(int row, long hash) {
+
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		return row * width + ((h1 + row * h2) & mask);
+	}
+
+	/**
+	 * two murmur3 style 32 bit hashes of the key characters, with different
+	 * seeds, computed in a single pass and packed as (h2 << 32) | h1
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static long hash(String key) {
+
+		int h1 = SEED_1;
+		int h2 = SEED_2;
+		for (int i = 0; i < key.length(); i++) {
+
+			int k = key.charAt(i) * 0xCC9E2D51;
+			k = Integer.rotateLeft(k, 15) * 0x1B873593;
+
+			h1 ^= k;
+			h1 = Integer.rotateLeft(h1, 13) * 5 + 0xE6546B64;
+			h2 ^= k;
+			h2 = Integer.rotateLeft(h2, 13) * 5 + 0xE6546B64;
+		}
+
+		return ((long) mix(h2 ^ key.length()) << 32) | (mix(h1 ^ key.length()) & 0xFFFFFFFFL);
+	}
+
+	private static int mix(int h) {
+
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,21 @@
+package com.flyppo.cb.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * a frequently accessed key (or key prefix) with its estimated
+ * access count over the tracking window
+ * 
+ * @author mmt6461
+ *
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class HotKey {
+
+	private final String key;
+	private final long estimatedCount;
+}
@@ -0,0 +1,181 @@
+package com.flyppo.cb.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * tracks the most frequently accessed keys over a sliding window
+ * 	- frequencies are estimated with a count-min sketch per window,
+ * 	  the current and the previous window together form the sliding window
+ * 	- the top K keys are kept as candidates, a key is admitted only
+ * 	  when its estimate beats the coldest candidate
+ *
+ * @author mmt6461
+ *
+ */
+public class HotKeyTracker {
+
+	private static final int SKETCH_WIDTH = 2048;
+
+	private final CountMinSketch[] sketches = { new CountMinSketch(SKETCH_WIDTH), new CountMinSketch(SKETCH_WIDTH) };
+	private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+	private final AtomicLong windowStart;
+	private final long windowMillis;
+	private final int topK;
+
+	private volatile int current;
+	private volatile long admissionThreshold;
+
+	/**
+	 * @param topK
+	 * 		number of hot keys to track
+	 * @param windowMillis
+	 * 		length of a single window, estimates span up to two windows
+	 */
+	public HotKeyTracker(int topK, long windowMillis) {
+
+		if (topK <= 0 || windowMillis <= 0)
+			throw new IllegalArgumentException("topK and windowMillis must be positive");
+
+		this.topK = topK;
+		this.windowMillis = windowMillis;
+		this.windowStart = new AtomicLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * records a single access of the key
+	 *
+	 * @param key
+	 */
+	public void record(String key) {
+
+		if (key == null)
+			return;
+
+		rotateIfNeeded();
+
+		int index = current;
+		long estimate = sketches[index].increment(key) + sketches[1 - index].estimate(key);
+
+		// already tracked, refresh without locking
+		if (candidates.replace(key, estimate) != null || estimate <= admissionThreshold)
+			return;
+
+		admit(key, estimate);
+	}
+
+	/**
+	 * returns the tracked keys, hottest first
+	 *
+	 * @return
+	 */
+	public List<HotKey> getHotKeys() {
+
+		rotateIfNeeded();
+
+		List<HotKey> hotKeys = new ArrayList<>(candidates.size());
+		for (String key : candidates.keySet()) {
+
+			long estimate = estimate(key);
+			if (estimate > 0)
+				hotKeys.add(new HotKey(key, estimate));
+		}
+
+		Collections.sort(hotKeys, Comparator.comparingLong(HotKey::getEstimatedCount).reversed());
+		return hotKeys;
+	}
+
+	/**
+	 * adds the key to the candidates, evicting the coldest one when full
+	 *
+	 * @param key
+	 * @param estimate
+	 */
+	private synchronized void admit(String key, long estimate) {
+
+		// raced with another admission of the key or a threshold raise
+		if (candidates.containsKey(key) || estimate <= admissionThreshold)
+			return;
+
+		if (candidates.size() >= topK) {
+
+			Map.Entry<String, Long> coldest = coldest();
+			if (coldest == null)
+				return;
+
+			// candidates keep growing, catch the threshold up so rejected keys stay lock free
+			if (estimate <= coldest.getValue()) {
+				admissionThreshold = coldest.getValue();
+				return;
+			}
+
+			candidates.remove(coldest.getKey());
+		}
+
+		candidates.put(key, estimate);
+		updateAdmissionThreshold();
+	}
+
+	/**
+	 * starts a new window once the current one has elapsed
+	 * 	- the previous window's sketch is cleared and becomes the current one,
+	 * 	  both are cleared when the tracker was idle for longer than a window
+	 * 	- candidate estimates are refreshed and cold candidates dropped
+	 */
+	private void rotateIfNeeded() {
+
+		long now = System.currentTimeMillis();
+		long start = windowStart.get();
+		if (now - start < windowMillis || !windowStart.compareAndSet(start, now))
+			return;
+
+		int next = 1 - current;
+		sketches[next].clear();
+
+		// idle for more than a full window, the outgoing window is stale as well
+		if (now - start >= 2 * windowMillis)
+			sketches[current].clear();
+
+		current = next;
+
+		synchronized (this) {
+
+			for (String key : candidates.keySet()) {
+
+				long estimate = estimate(key);
+				if (estimate > 0)
+					candidates.put(key, estimate);
+				else
+					candidates.remove(key);
+			}
+			updateAdmissionThreshold();
+		}
+	}
+
+	private long estimate(String key) {
+
+		return sketches[0].estimate(key) + sketches[1].estimate(key);
+	}
+
+	private Map.Entry<String, Long> coldest() {
+
+		Map.Entry<String, Long> coldest = null;
+		for (Map.Entry<String, Long> entry : candidates.entrySet()) {
+
+			if (coldest == null || entry.getValue() < coldest.getValue())
+				coldest = entry;
+		}
+		return coldest;
+	}
+
+	private void updateAdmissionThreshold() {
+
+		Map.Entry<String, Long> coldest = candidates.size() < topK ? null : coldest();
+		admissionThreshold = coldest == null ? 0 : coldest.getValue();
+	}
+}
@@ -2,7 +2,13 @@ package com.flyppo.cb.service;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -12,16 +18,21 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.couchbase.client.core.BackpressureException;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.JsonLongDocument;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TemporaryFailureException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.flyppo.cb.config.CouchbaseConfiguration;
 import com.flyppo.cb.constants.LoggerConstants;
 import com.flyppo.cb.exceptions.CouchbaseServiceException;
 import com.flyppo.cb.exceptions.DAOInvalidRequestException;
+import com.flyppo.cb.metrics.HotKey;
+import com.flyppo.cb.metrics.HotKeyTracker;
 
 import rx.Observable;
 
@@ -31,6 +42,9 @@ import rx.Observable;
  * 
  * the manager interacts directly with the underlying couchbase bucket sdk api
  * 
+ * when counter accumulation is configured, {@link #shutdown()} must be called
+ * on exit (e.g. from a dropwizard Managed) or pending counter deltas are lost
+ * 
  * @author mmt6461
  *
  */
@@ -40,10 +54,15 @@ public class CouchbaseService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseService.class);
 
     private static final String KEY_SEPARATOR = "::";
+    private static final int DEFAULT_HOT_KEY_WINDOW_MILLIS = 60000;
 
     private final ObjectMapper mapper;
 	private final Bucket bucket;
 	private final CouchbaseConfiguration configuration;
+	private final CounterAccumulator counterAccumulator;
+	private final ScheduledExecutorService counterFlusher;
+	private final HotKeyTracker hotKeys;
+	private final HotKeyTracker hotKeyPrefixes;
     
     /**
      * constructor used for couchbase manager (cluster, bucket) creation
@@ -59,6 +78,38 @@ public class CouchbaseService {
         mapper = new ObjectMapper();
         this.configuration = configuration;
         this.bucket = bucket;
+
+        // local counter accumulation, flushed periodically and on threshold
+        int flushInterval = configuration.getCounterFlushIntervalMillis();
+        if (flushInterval > 0) {
+
+            counterFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "couchbase-counter-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            counterAccumulator = new CounterAccumulator(this::applyCounters, counterFlusher, configuration.getCounterFlushThreshold());
+            counterFlusher.scheduleWithFixedDelay(counterAccumulator::flushAll, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+            LOGGER.info(LoggerConstants.COUCH_COUNTER_ACCUMULATION_ENABLED, flushInterval, configuration.getCounterFlushThreshold());
+        } else {
+
+            counterAccumulator = null;
+            counterFlusher = null;
+        }
+
+        // hot key and key prefix tracking over sliding windows
+        int topK = configuration.getHotKeyTopK();
+        if (topK > 0) {
+
+            int window = configuration.getHotKeyWindowMillis() > 0 ? configuration.getHotKeyWindowMillis() : DEFAULT_HOT_KEY_WINDOW_MILLIS;
+            hotKeys = new HotKeyTracker(topK, window);
+            hotKeyPrefixes = new HotKeyTracker(topK, window);
+            LOGGER.info(LoggerConstants.COUCH_HOT_KEY_TRACKING_ENABLED, topK, window);
+        } else {
+
+            hotKeys = null;
+            hotKeyPrefixes = null;
+        }
 	}
 	
 	/**
@@ -84,6 +135,8 @@ public class CouchbaseService {
 			return null;
 		}
 		
+		recordAccess(key);
+		
         // retrieve the document for the key
 		long start = System.currentTimeMillis();
 		JsonDocument document = bucket.get(key, getOperationTimeoutInMillis(), TimeUnit.MILLISECONDS);
@@ -156,6 +209,8 @@ public class CouchbaseService {
 			throw new DAOInvalidRequestException(LoggerConstants.COUCH_JSON_OBJECT_MAPPING_EXCEPTION, e);
 		}
 		
+		recordAccess(key);
+		
 		// create couch document
 		JsonObject jsonObject = JsonObject.fromJson(jsonStr);
 		Document<JsonObject> document = JsonDocument.create(key, ttl, jsonObject);
@@ -192,6 +247,8 @@ public class CouchbaseService {
 	 */
 	public void remove (String key) throws CouchbaseServiceException {
 	    
+	    recordAccess(key);
+	    
 	    try {
 	        bucket.remove(key);
         } catch (DocumentDoesNotExistException e) {
@@ -207,6 +264,188 @@ public class CouchbaseService {
 	    }
 	}
 	
+    /**
+     * atomically adds the delta to the counter document for the given key
+     * 	- the document is created with the initial value if it does not exist
+     * 
+     * @param key
+     * @param delta
+     * @param initial
+     * @return the counter value after the operation
+     * @throws CouchbaseServiceException
+     */
+    public long counter(String key, long delta, long initial) throws CouchbaseServiceException {
+        
+        if (key == null || initial < 0) {
+            LOGGER.error(LoggerConstants.COUCH_COUNTER_INVALID_INPUT_FOR_KEY, key);
+            throw new DAOInvalidRequestException(LoggerConstants.COUCH_COUNTER_INVALID_INPUT_FOR_KEY);
+        }
+        
+        recordAccess(key);
+        
+        try {
+            return bucket.counter(key, delta, initial, getOperationTimeoutInMillis(), TimeUnit.MILLISECONDS).content();
+        } catch (RuntimeException e) {
+            
+            LOGGER.error(LoggerConstants.COUCH_EXCEPTION_FOR_COUNTER_KEY, key);
+            LOGGER.error(LoggerConstants.COUCH_EXCEPTION, e);
+            throw new CouchbaseServiceException(LoggerConstants.COUCH_EXCEPTION, e);
+        }
+    }
+    
+    /**
+     * adds the delta to the counter for the given key
+     * 	- when counter accumulation is configured, the delta is batched locally
+     * 	  and reaches the bucket on the next flush
+     * 	- otherwise, or after {@link #shutdown()}, it is applied immediately
+     * 	  as an atomic increment
+     * 
+     * @param key
+     * @param delta
+     * @throws CouchbaseServiceException
+     */
+    public void incrementCounter(String key, long delta) throws CouchbaseServiceException {
+        
+        if (key == null) {
+            LOGGER.error(LoggerConstants.COUCH_COUNTER_INVALID_INPUT_FOR_KEY, key);
+            throw new DAOInvalidRequestException(LoggerConstants.COUCH_COUNTER_INVALID_INPUT_FOR_KEY);
+        }
+        
+        if (counterAccumulator == null || !counterAccumulator.add(key, delta))
+            applyCounter(key, delta);
+    }
+    
+    /**
+     * returns the counter value for the given key, including any delta
+     * still pending locally; 0 if the counter does not exist
+     * 
+     * @param key
+     * @return
+     * @throws CouchbaseServiceException
+     */
+    public long getCounter(String key) throws CouchbaseServiceException {
+        
+        if (key == null) {
+            LOGGER.error(LoggerConstants.COUCH_COUNTER_INVALID_INPUT_FOR_KEY, key);
+            throw new DAOInvalidRequestException(LoggerConstants.COUCH_COUNTER_INVALID_INPUT_FOR_KEY);
+        }
+        
+        recordAccess(key);
+        
+        long pending = counterAccumulator == null ? 0 : counterAccumulator.pending(key);
+        
+        JsonLongDocument document;
+        try {
+            document = bucket.get(key, JsonLongDocument.class, getOperationTimeoutInMillis(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            
+            LOGGER.error(LoggerConstants.COUCH_EXCEPTION_FOR_COUNTER_KEY, key);
+            LOGGER.error(LoggerConstants.COUCH_EXCEPTION, e);
+            throw new CouchbaseServiceException(LoggerConstants.COUCH_EXCEPTION, e);
+        }
+        
+        if (document == null || document.content() == null)
+            return pending;
+        
+        return document.content() + pending;
+    }
+    
+    /**
+     * pushes all locally accumulated counter deltas to the bucket
+     */
+    public void flushCounters() {
+        
+        if (counterAccumulator != null)
+            counterAccumulator.flushAll();
+    }
+    
+    /**
+     * stops the periodic counter flush and flushes the pending deltas
+     * 	- to be called on exit, the flusher thread is a daemon and does not
+     * 	  flush by itself when the JVM stops
+     * 	- counter increments after shutdown are applied directly
+     */
+    public void shutdown() {
+        
+        if (counterFlusher == null)
+            return;
+        
+        counterFlusher.shutdown();
+        try {
+            if (!counterFlusher.awaitTermination(getOperationTimeoutInMillis(), TimeUnit.MILLISECONDS))
+                LOGGER.error(LoggerConstants.COUCH_COUNTER_FLUSHER_TERMINATION_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        counterAccumulator.close();
+    }
+    
+    /**
+     * applies the delta as a single atomic increment, seeding
+     * a missing counter document with the delta itself
+     * 
+     * @param key
+     * @param delta
+     * @throws CouchbaseServiceException
+     */
+    private void applyCounter(String key, long delta) throws CouchbaseServiceException {
+        
+        counter(key, delta, Math.max(delta, 0));
+    }
+    
+    /**
+     * applies the deltas as atomic increments in one async batch
+     * 	- backpressure and temporary failures were not applied and are returned for retry
+     * 	- any other failure, timeouts in particular, may have been applied
+     * 	  on the server and is dropped rather than counted twice
+     * 	- if the batch itself fails, keys never sent are retried and keys
+     * 	  sent without an outcome are dropped
+     * 
+     * @param deltas
+     * @return the keys that may be retried
+     */
+    private Collection<String> applyCounters(Map<String, Long> deltas) {
+        
+        Set<String> retryable = ConcurrentHashMap.newKeySet();
+        Set<String> sent = ConcurrentHashMap.newKeySet();
+        Set<String> settled = ConcurrentHashMap.newKeySet();
+        
+        try {
+            Observable.from(deltas.entrySet()).
+                    flatMap(entry -> {
+                        recordAccess(entry.getKey());
+                        sent.add(entry.getKey());
+                        return bucket.async().counter(entry.getKey(), entry.getValue(), Math.max(entry.getValue(), 0)).
+                                timeout(getOperationTimeoutInMillis(), TimeUnit.MILLISECONDS).
+                                doOnNext(document -> settled.add(entry.getKey())).
+                                onErrorResumeNext(e -> {
+                                    settled.add(entry.getKey());
+                                    if (e instanceof BackpressureException || e instanceof TemporaryFailureException) {
+                                        retryable.add(entry.getKey());
+                                    } else {
+                                        LOGGER.error(LoggerConstants.COUCH_EXCEPTION_FOR_COUNTER_KEY, entry.getKey());
+                                        LOGGER.error(LoggerConstants.COUCH_COUNTER_DELTA_DROPPED_FOR_KEY, entry.getKey(), entry.getValue(), e);
+                                    }
+                                    return Observable.<JsonLongDocument>empty();
+                                });
+                    }).
+                    toList().toBlocking().single();
+        } catch (RuntimeException e) {
+            
+            LOGGER.error(LoggerConstants.COUCH_EXCEPTION, e);
+            for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+                
+                if (!sent.contains(entry.getKey()))
+                    retryable.add(entry.getKey());
+                else if (!settled.contains(entry.getKey()))
+                    LOGGER.error(LoggerConstants.COUCH_COUNTER_DELTA_DROPPED_FOR_KEY, entry.getKey(), entry.getValue());
+            }
+        }
+        
+        return retryable;
+    }
+    
     /**
      * @param cacheKeys
      * @return bulk JsonDocument for input keys
@@ -215,7 +454,11 @@ public class CouchbaseService {
     public List<JsonDocument> bulkGet(final Collection<String> cacheKeys) throws CouchbaseServiceException {
         
         try{
-            return Observable.from(cacheKeys).
+            Observable<String> keys = Observable.from(cacheKeys);
+            if (hotKeys != null)
+                keys = keys.doOnNext(this::recordAccess);
+            
+            return keys.
                     flatMap(cacheKey -> bucket.async().get(cacheKey).timeout(getOperationTimeoutInMillis(), TimeUnit.MILLISECONDS)).
                     toList().toBlocking().single();
         } catch(RuntimeException e){
@@ -227,6 +470,46 @@ public class CouchbaseService {
         }
     }
     
+    /**
+     * returns the hottest keys over the recent window, hottest first;
+     * empty when hot key tracking is not configured
+     * 
+     * @return
+     */
+    public List<HotKey> getHotKeys() {
+        
+        return hotKeys == null ? Collections.emptyList() : hotKeys.getHotKeys();
+    }
+    
+    /**
+     * returns the hottest key prefixes (key up to the last separator)
+     * over the recent window, hottest first
+     * 
+     * @return
+     */
+    public List<HotKey> getHotKeyPrefixes() {
+        
+        return hotKeyPrefixes == null ? Collections.emptyList() : hotKeyPrefixes.getHotKeys();
+    }
+    
+    /**
+     * records the key access with the hot key trackers
+     * 
+     * @param key
+     */
+    private void recordAccess(String key) {
+        
+        if (hotKeys == null || key == null)
+            return;
+        
+        hotKeys.record(key);
+        
+        String separator = StringUtils.isEmpty(configuration.getKeySeparator()) ? KEY_SEPARATOR : configuration.getKeySeparator();
+        int end = key.lastIndexOf(separator);
+        if (end > 0)
+            hotKeyPrefixes.record(key.substring(0, end));
+    }
+    
     /**
      * returns whether the couchbase cluster is up
      * 
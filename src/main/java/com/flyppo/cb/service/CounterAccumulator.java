@@ -0,0 +1,286 @@
+package com.flyppo.cb.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.flyppo.cb.constants.LoggerConstants;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * accumulates counter increments locally and hands them over
+ * to the bucket as a single atomic increment per key
+ * 	- each key is a LongAdder, striped only once it is contended
+ * 	- deltas are drained on flush, deltas that were definitely not
+ * 	  applied are added back and go out with the next flush
+ * 	- keys with nothing pending are dropped on the periodic flush
+ *
+ * @author mmt6461
+ *
+ */
+@Slf4j
+class CounterAccumulator {
+
+	/**
+	 * applies the drained deltas to the bucket in one batch
+	 */
+	@FunctionalInterface
+	interface CounterSink {
+
+		/**
+		 * @param deltas
+		 * @return the keys whose delta was definitely not applied and may be retried,
+		 * 		failures that may have been applied are not returned
+		 */
+		Collection<String> apply(Map<String, Long> deltas);
+	}
+
+	// flush attempts on close before the remaining retryable deltas are dropped
+	private static final int CLOSE_FLUSH_ATTEMPTS = 3;
+	private static final long CLOSE_FLUSH_PAUSE_MILLIS = 100;
+
+	private final Map<String, PendingCounter> counters = new ConcurrentHashMap<>();
+	private final CounterSink sink;
+	private final Executor flusher;
+	private final long flushThreshold;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param sink
+	 * @param flusher
+	 * 		runs the eager flushes, off the caller's thread
+	 * @param flushThreshold
+	 * 		pending delta of a key at which it is flushed eagerly, 0 to flush only periodically
+	 */
+	CounterAccumulator(CounterSink sink, Executor flusher, long flushThreshold) {
+
+		this.sink = sink;
+		this.flusher = flusher;
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * adds the delta to the local counter for the key
+	 *
+	 * @param key
+	 * @param delta
+	 * @return false if the accumulator is closed and the delta was not taken
+	 */
+	boolean add(String key, long delta) {
+
+		if (closed)
+			return false;
+
+		PendingCounter counter = counters.computeIfAbsent(key, k -> new PendingCounter());
+		addTo(key, counter, delta);
+
+		// closed while adding, the final flush may already have run
+		if (closed) {
+			flush(Collections.singletonMap(key, counter), false);
+			return true;
+		}
+
+		if (flushThreshold > 0 && Math.abs(counter.adder.sum()) >= flushThreshold)
+			scheduleFlush(key, counter);
+
+		return true;
+	}
+
+	/**
+	 * returns the delta pending locally for the key
+	 *
+	 * @param key
+	 * @return
+	 */
+	long pending(String key) {
+
+		PendingCounter counter = counters.get(key);
+		return counter == null ? 0 : counter.adder.sum();
+	}
+
+	/**
+	 * flushes the pending deltas of all keys in a single batch
+	 * and drops the keys that have nothing pending
+	 */
+	void flushAll() {
+
+		flushAll(true);
+	}
+
+	/**
+	 * stops taking deltas and flushes what is pending
+	 * 	- retryable failures are flushed again a few times,
+	 * 	  whatever is still failing after that is dropped
+	 */
+	void close() {
+
+		closed = true;
+
+		for (int attempt = 1; attempt < CLOSE_FLUSH_ATTEMPTS; attempt++) {
+
+			if (!flushAll(true))
+				return;
+
+			try {
+				Thread.sleep(CLOSE_FLUSH_PAUSE_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		flushAll(false);
+	}
+
+	/**
+	 * @param requeue
+	 * 		whether retryable failures are added back or dropped
+	 * @return whether any delta was added back
+	 */
+	private boolean flushAll(boolean requeue) {
+
+		Map<String, PendingCounter> batch = new HashMap<>();
+		for (Map.Entry<String, PendingCounter> entry : counters.entrySet()) {
+
+			PendingCounter counter = entry.getValue();
+			if (counter.adder.sum() != 0)
+				batch.put(entry.getKey(), counter);
+			else if (!counter.flushScheduled.get())
+				retire(entry.getKey(), counter);
+		}
+
+		return flush(batch, requeue);
+	}
+
+	/**
+	 * hands an eager flush of the key over to the flusher, once at a time
+	 *
+	 * @param key
+	 * @param counter
+	 */
+	private void scheduleFlush(String key, PendingCounter counter) {
+
+		if (!counter.flushScheduled.compareAndSet(false, true))
+			return;
+
+		try {
+			flusher.execute(() -> {
+				counter.flushScheduled.set(false);
+				flush(Collections.singletonMap(key, counter), true);
+			});
+		} catch (RejectedExecutionException e) {
+
+			// shutting down, the final flush picks the key up
+			counter.flushScheduled.set(false);
+		}
+	}
+
+	/**
+	 * drains the counters and applies their deltas
+	 *
+	 * @param batch
+	 * @param requeue
+	 * 		whether retryable failures are added back or dropped
+	 * @return whether any delta was added back
+	 */
+	private boolean flush(Map<String, PendingCounter> batch, boolean requeue) {
+
+		Map<String, Long> deltas = new HashMap<>();
+		for (Map.Entry<String, PendingCounter> entry : batch.entrySet()) {
+
+			long delta = entry.getValue().drain();
+			if (delta != 0)
+				deltas.put(entry.getKey(), delta);
+		}
+
+		if (deltas.isEmpty())
+			return false;
+
+		boolean requeued = false;
+		for (String key : sink.apply(deltas)) {
+
+			long delta = deltas.get(key);
+			if (requeue) {
+
+				log.warn(LoggerConstants.COUCH_COUNTER_FLUSH_FAILED_FOR_KEY, key, delta);
+				addTo(key, batch.get(key), delta);
+				requeued = true;
+			} else {
+
+				log.error(LoggerConstants.COUCH_COUNTER_DELTA_DROPPED_FOR_KEY, key, delta);
+			}
+		}
+
+		return requeued;
+	}
+
+	/**
+	 * adds to the counter, moving the delta to the live counter of the key
+	 * if this one got retired concurrently
+	 *
+	 * @param key
+	 * @param counter
+	 * @param delta
+	 */
+	private void addTo(String key, PendingCounter counter, long delta) {
+
+		counter.adder.add(delta);
+
+		// the retiring drain may have missed this add, move whatever is left
+		if (counter.retired) {
+
+			long moved = counter.drain();
+			if (moved != 0)
+				addTo(key, counters.computeIfAbsent(key, k -> new PendingCounter()), moved);
+		}
+	}
+
+	/**
+	 * drops an idle counter from the map; adds racing with the removal
+	 * are picked up by either this drain or the adding thread
+	 *
+	 * @param key
+	 * @param counter
+	 */
+	private void retire(String key, PendingCounter counter) {
+
+		if (!counters.remove(key, counter))
+			return;
+
+		counter.retired = true;
+		long late = counter.drain();
+		if (late != 0)
+			addTo(key, counters.computeIfAbsent(key, k -> new PendingCounter()), late);
+	}
+
+	/**
+	 * the pending delta of a key
+	 */
+	private static class PendingCounter {
+
+		private final LongAdder adder = new LongAdder();
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		private volatile boolean retired;
+
+		/**
+		 * takes out the pending delta; subtracting what was summed instead of
+		 * resetting keeps concurrent adds, drains are serialized so none is taken twice
+		 *
+		 * @return
+		 */
+		synchronized long drain() {
+
+			long delta = adder.sum();
+			adder.add(-delta);
+			return delta;
+		}
+	}
+}